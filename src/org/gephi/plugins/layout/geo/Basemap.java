@@ -0,0 +1,79 @@
+/*
+Copyright 2008 WebAtlas
+Authors : Mathieu Bastian, Mathieu Jacomy, Julian Bilcke
+Website : http://www.gephi.org
+
+This file is part of Gephi.
+
+Gephi is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+Gephi is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Gephi.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.gephi.plugins.layout.geo;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A boundary dataset loaded once, and its projected layers. The last layers
+ * are cached by projection, scale and centering, so that switching back to a
+ * projection reuses the projected and simplified lines.
+ *
+ * @author Alexis Jacomy
+ */
+final class Basemap {
+
+    private static final int CACHE_SIZE = 4;
+    private final File file;
+    private final List<GeoCoordinateStore> parts;
+    private final Map<String, BasemapLayer> layers = new LinkedHashMap<String, BasemapLayer>(CACHE_SIZE + 1, 0.75f, true) {
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, BasemapLayer> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+
+    private Basemap(File file, List<GeoCoordinateStore> parts) {
+        this.file = file;
+        this.parts = parts;
+    }
+
+    static Basemap load(File file) throws IOException {
+        return new Basemap(file, BasemapReader.read(file));
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    /**
+     * @param meanLat average latitude of the nodes, as given to
+     * <code>GeoProjector</code>
+     * @param meanLon average longitude of the nodes, as given to
+     * <code>GeoProjector</code>
+     * @param offsetX centering offset subtracted from the nodes
+     * @param offsetY centering offset subtracted from the nodes
+     */
+    synchronized BasemapLayer getLayer(String projection, double scale, double meanLat, double meanLon, double offsetX, double offsetY) {
+        String key = projection + '|' + scale + '|' + meanLat + '|' + meanLon + '|' + offsetX + '|' + offsetY;
+        BasemapLayer layer = layers.get(key);
+        if (layer == null) {
+            layer = new BasemapLayer(parts, new GeoProjector(projection, scale, meanLat, meanLon), scale, offsetX, offsetY);
+            layers.put(key, layer);
+        }
+        return layer;
+    }
+}
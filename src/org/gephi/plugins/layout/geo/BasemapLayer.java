@@ -0,0 +1,187 @@
+/*
+Copyright 2008 WebAtlas
+Authors : Mathieu Bastian, Mathieu Jacomy, Julian Bilcke
+Website : http://www.gephi.org
+
+This file is part of Gephi.
+
+Gephi is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+Gephi is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Gephi.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.gephi.plugins.layout.geo;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The basemap projected like the nodes of a given run: same projection,
+ * scale and centering. Each zoom level is simplified with Douglas-Peucker,
+ * computed on first access and then kept.
+ *
+ * @author Alexis Jacomy
+ */
+public final class BasemapLayer {
+
+    /**
+     * Number of zoom levels; the last one is not simplified.
+     */
+    public static final int ZOOM_LEVELS = 8;
+    //Simplification tolerance at zoom level 0, in radian of the Earth (~64 km)
+    private static final double BASE_TOLERANCE = 0.01;
+    private final List<GeoCoordinateStore> sourceParts;
+    private final GeoProjector projector;
+    private final double scale;
+    private final double offsetX;
+    private final double offsetY;
+    private float[][] projectedParts;
+    private final float[][][] levels = new float[ZOOM_LEVELS][][];
+
+    BasemapLayer(List<GeoCoordinateStore> sourceParts, GeoProjector projector, double scale, double offsetX, double offsetY) {
+        this.sourceParts = sourceParts;
+        this.projector = projector;
+        this.scale = scale;
+        this.offsetX = offsetX;
+        this.offsetY = offsetY;
+    }
+
+    /**
+     * Returns the lines of the basemap at the given zoom level, from 0 (the
+     * coarsest) to <code>ZOOM_LEVELS - 1</code> (all the vertices). Each line
+     * is an array of x and y couples, in the coordinates of the nodes.
+     */
+    public synchronized float[][] getParts(int zoom) {
+        if (zoom < 0 || zoom >= ZOOM_LEVELS) {
+            throw new IllegalArgumentException("Zoom level must be between 0 and " + (ZOOM_LEVELS - 1));
+        }
+        if (levels[zoom] == null) {
+            float[][] projected = getProjectedParts();
+            if (zoom == ZOOM_LEVELS - 1) {
+                levels[zoom] = projected;
+            } else {
+                double tolerance = Math.abs(scale) * BASE_TOLERANCE / (1 << zoom);
+                float[][] simplified = new float[projected.length][];
+                for (int i = 0; i < projected.length; i++) {
+                    simplified[i] = simplify(projected[i], tolerance);
+                }
+                levels[zoom] = simplified;
+            }
+        }
+        return levels[zoom];
+    }
+
+    private float[][] getProjectedParts() {
+        if (projectedParts == null) {
+            List<float[]> parts = new ArrayList<float[]>();
+            double[] point = new double[2];
+            for (GeoCoordinateStore source : sourceParts) {
+                float[] part = new float[source.size() * 2];
+                int size = 0;
+                for (int i = 0; i < source.size(); i++) {
+                    projector.project(source.getLatitude(i), source.getLongitude(i), point);
+                    // poles are at infinity in some projections: cut the line
+                    if (Double.isInfinite(point[0]) || Double.isNaN(point[0])
+                            || Double.isInfinite(point[1]) || Double.isNaN(point[1])) {
+                        addPart(parts, part, size);
+                        size = 0;
+                        continue;
+                    }
+                    part[size++] = (float) (point[0] - offsetX);
+                    part[size++] = (float) (point[1] - offsetY);
+                }
+                addPart(parts, part, size);
+            }
+            projectedParts = parts.toArray(new float[parts.size()][]);
+        }
+        return projectedParts;
+    }
+
+    private static void addPart(List<float[]> parts, float[] part, int size) {
+        if (size >= 4) {
+            float[] p = new float[size];
+            System.arraycopy(part, 0, p, 0, size);
+            parts.add(p);
+        }
+    }
+
+    /**
+     * Douglas-Peucker, with an explicit stack to support very long lines.
+     */
+    static float[] simplify(float[] part, double tolerance) {
+        int count = part.length / 2;
+        if (count <= 2) {
+            return part;
+        }
+        boolean[] keep = new boolean[count];
+        keep[0] = true;
+        keep[count - 1] = true;
+        int kept = 2;
+        double squaredTolerance = tolerance * tolerance;
+
+        int[] stack = new int[64];
+        int top = 0;
+        stack[top++] = 0;
+        stack[top++] = count - 1;
+        while (top > 0) {
+            int last = stack[--top];
+            int first = stack[--top];
+
+            double ax = part[2 * first];
+            double ay = part[2 * first + 1];
+            double dx = part[2 * last] - ax;
+            double dy = part[2 * last + 1] - ay;
+            double length = dx * dx + dy * dy;
+            double maxDistance = -1;
+            int index = -1;
+            for (int i = first + 1; i < last; i++) {
+                double px = part[2 * i] - ax;
+                double py = part[2 * i + 1] - ay;
+                double distance;
+                if (length == 0) {
+                    // closed ring: distance to the start point
+                    distance = px * px + py * py;
+                } else {
+                    double cross = px * dy - py * dx;
+                    distance = cross * cross / length;
+                }
+                if (distance > maxDistance) {
+                    maxDistance = distance;
+                    index = i;
+                }
+            }
+
+            if (index != -1 && maxDistance > squaredTolerance) {
+                keep[index] = true;
+                kept++;
+                if (top + 4 > stack.length) {
+                    int[] s = new int[stack.length * 2];
+                    System.arraycopy(stack, 0, s, 0, top);
+                    stack = s;
+                }
+                stack[top++] = first;
+                stack[top++] = index;
+                stack[top++] = index;
+                stack[top++] = last;
+            }
+        }
+
+        float[] simplified = new float[kept * 2];
+        int j = 0;
+        for (int i = 0; i < count; i++) {
+            if (keep[i]) {
+                simplified[j++] = part[2 * i];
+                simplified[j++] = part[2 * i + 1];
+            }
+        }
+        return simplified;
+    }
+}
@@ -0,0 +1,372 @@
+/*
+Copyright 2008 WebAtlas
+Authors : Mathieu Bastian, Mathieu Jacomy, Julian Bilcke
+Website : http://www.gephi.org
+
+This file is part of Gephi.
+
+Gephi is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+Gephi is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Gephi.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.gephi.plugins.layout.geo;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads the lines and polygon rings of a boundary dataset, as parts of
+ * latitude/longitude in degree. Supported formats are the ESRI shapefile
+ * (<code>.shp</code>, polylines and polygons, with or without Z/M) and
+ * GeoJSON (any geometry with <code>coordinates</code>). Points are ignored,
+ * and attributes are not read.
+ *
+ * @author Alexis Jacomy
+ */
+final class BasemapReader {
+
+    private BasemapReader() {
+    }
+
+    static List<GeoCoordinateStore> read(File file) throws IOException {
+        String name = file.getName().toLowerCase();
+        if (name.endsWith(".shp")) {
+            return readShapefile(file);
+        } else if (name.endsWith(".json") || name.endsWith(".geojson")) {
+            return readGeoJson(file);
+        }
+        throw new IOException("Unsupported basemap format: " + file);
+    }
+
+    // Shapefile
+    private static final int SHP_FILE_CODE = 9994;
+    private static final int SHP_HEADER_LENGTH = 100;
+
+    private static List<GeoCoordinateStore> readShapefile(File file) throws IOException {
+        List<GeoCoordinateStore> parts = new ArrayList<GeoCoordinateStore>();
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            buffer.order(ByteOrder.BIG_ENDIAN);
+            if (buffer.limit() < SHP_HEADER_LENGTH || buffer.getInt(0) != SHP_FILE_CODE) {
+                throw new IOException("Not a shapefile: " + file);
+            }
+
+            int position = SHP_HEADER_LENGTH;
+            while (position + 8 <= buffer.limit()) {
+                // record header, big-endian, length in 16 bits words
+                buffer.order(ByteOrder.BIG_ENDIAN);
+                int contentLength = buffer.getInt(position + 4) * 2;
+                int content = position + 8;
+                position = content + contentLength;
+                if (contentLength < 4 || position > buffer.limit()) {
+                    break;
+                }
+
+                buffer.order(ByteOrder.LITTLE_ENDIAN);
+                int shapeType = buffer.getInt(content);
+                switch (shapeType) {
+                    // PolyLine, Polygon and their Z and M variants
+                    case 3:
+                    case 5:
+                    case 13:
+                    case 15:
+                    case 23:
+                    case 25:
+                        break;
+                    default:
+                        continue;
+                }
+
+                // after the shape type and the bounding box
+                if (contentLength < 44) {
+                    throw new IOException("Malformed shapefile record in " + file);
+                }
+                int numParts = buffer.getInt(content + 36);
+                int numPoints = buffer.getInt(content + 40);
+                if (numParts < 0 || numPoints < 0
+                        || 44 + 4L * numParts + 16L * numPoints > contentLength) {
+                    throw new IOException("Malformed shapefile record in " + file);
+                }
+                int partsIndex = content + 44;
+                int pointsIndex = partsIndex + 4 * numParts;
+                for (int p = 0; p < numParts; p++) {
+                    int first = buffer.getInt(partsIndex + 4 * p);
+                    int last = p + 1 < numParts ? buffer.getInt(partsIndex + 4 * (p + 1)) : numPoints;
+                    if (first < 0 || first > last || last > numPoints) {
+                        throw new IOException("Malformed shapefile record in " + file);
+                    }
+                    if (last - first < 2) {
+                        continue;
+                    }
+                    GeoCoordinateStore part = new GeoCoordinateStore(last - first);
+                    for (int i = first; i < last; i++) {
+                        double x = buffer.getDouble(pointsIndex + 16 * i);
+                        double y = buffer.getDouble(pointsIndex + 16 * i + 8);
+                        part.set(i - first, y, x);
+                    }
+                    parts.add(part);
+                }
+            }
+        } finally {
+            raf.close();
+        }
+        return parts;
+    }
+
+    // GeoJSON
+    private static List<GeoCoordinateStore> readGeoJson(File file) throws IOException {
+        List<GeoCoordinateStore> parts = new ArrayList<GeoCoordinateStore>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"), 1 << 16);
+        try {
+            new GeoJsonScanner(reader, parts).scanValue();
+        } finally {
+            reader.close();
+        }
+        return parts;
+    }
+
+    /**
+     * Streaming scanner: walks the JSON without building it, and only reads
+     * the arrays found under a <code>coordinates</code> key. An array of
+     * positions becomes a part, whatever the geometry type is.
+     */
+    private static class GeoJsonScanner {
+
+        private final BufferedReader reader;
+        private final List<GeoCoordinateStore> parts;
+        private int next = -2;
+        //Current part, as lat/lon couples
+        private double[] buffer = new double[1024];
+        private int size;
+
+        GeoJsonScanner(BufferedReader reader, List<GeoCoordinateStore> parts) {
+            this.reader = reader;
+            this.parts = parts;
+        }
+
+        void scanValue() throws IOException {
+            skipSpaces();
+            int c = peek();
+            if (c == '{') {
+                scanObject();
+            } else if (c == '[') {
+                read();
+                skipSpaces();
+                if (peek() == ']') {
+                    read();
+                    return;
+                }
+                while (true) {
+                    scanValue();
+                    if (endOfArray()) {
+                        return;
+                    }
+                }
+            } else if (c == '"') {
+                readString();
+            } else {
+                readLiteral();
+            }
+        }
+
+        private void scanObject() throws IOException {
+            expect('{');
+            skipSpaces();
+            if (peek() == '}') {
+                read();
+                return;
+            }
+            int firstPart = parts.size();
+            String type = null;
+            while (true) {
+                skipSpaces();
+                String key = readString();
+                skipSpaces();
+                expect(':');
+                skipSpaces();
+                if (key.equals("coordinates") && peek() == '[') {
+                    scanCoordinates();
+                    size = 0;
+                } else if (key.equals("type") && peek() == '"') {
+                    type = readString();
+                } else {
+                    scanValue();
+                }
+                skipSpaces();
+                int c = read();
+                if (c == '}') {
+                    // the positions of a MultiPoint look like a line
+                    if ("MultiPoint".equals(type)) {
+                        parts.subList(firstPart, parts.size()).clear();
+                    }
+                    return;
+                } else if (c != ',') {
+                    throw new IOException("Malformed GeoJSON: unexpected '" + (char) c + "'");
+                }
+            }
+        }
+
+        /**
+         * Reads nested coordinate arrays.
+         *
+         * @return the depth of the array: 0 for a position, 1 for a list of
+         * positions (which is stored as a part), 2 and more above
+         */
+        private int scanCoordinates() throws IOException {
+            expect('[');
+            skipSpaces();
+            if (peek() == ']') {
+                read();
+                return 1;
+            }
+            if (peek() != '[') {
+                // a position: longitude, latitude, and maybe an altitude
+                double lon = readNumber();
+                endOfArray();
+                double lat = readNumber();
+                while (!endOfArray()) {
+                    readLiteral();
+                }
+                add(lat, lon);
+                return 0;
+            }
+
+            int start = size;
+            int depth = 0;
+            while (true) {
+                depth = scanCoordinates() + 1;
+                if (endOfArray()) {
+                    break;
+                }
+            }
+            if (depth == 1) {
+                if (size - start >= 4) {
+                    GeoCoordinateStore part = new GeoCoordinateStore((size - start) / 2);
+                    for (int i = start; i < size; i += 2) {
+                        part.set((i - start) / 2, buffer[i], buffer[i + 1]);
+                    }
+                    parts.add(part);
+                }
+                size = start;
+            }
+            return depth;
+        }
+
+        private void add(double lat, double lon) {
+            if (size + 2 > buffer.length) {
+                double[] b = new double[buffer.length * 2];
+                System.arraycopy(buffer, 0, b, 0, size);
+                buffer = b;
+            }
+            buffer[size++] = lat;
+            buffer[size++] = lon;
+        }
+
+        /**
+         * Consumes the separator after an array element.
+         *
+         * @return true if it was the end of the array
+         */
+        private boolean endOfArray() throws IOException {
+            skipSpaces();
+            int c = read();
+            if (c == ']') {
+                return true;
+            } else if (c != ',') {
+                throw new IOException("Malformed GeoJSON: unexpected '" + (char) c + "'");
+            }
+            skipSpaces();
+            return false;
+        }
+
+        private String readString() throws IOException {
+            expect('"');
+            StringBuilder sb = new StringBuilder();
+            while (true) {
+                int c = read();
+                if (c == '"') {
+                    return sb.toString();
+                } else if (c == '\\') {
+                    // escaped characters are kept as is, only keys are compared
+                    c = read();
+                } else if (c == -1) {
+                    throw new IOException("Malformed GeoJSON: unterminated string");
+                }
+                sb.append((char) c);
+            }
+        }
+
+        private double readNumber() throws IOException {
+            String literal = readLiteral();
+            try {
+                return Double.parseDouble(literal);
+            } catch (NumberFormatException e) {
+                throw new IOException("Malformed GeoJSON: number expected, found '" + literal + "'");
+            }
+        }
+
+        /**
+         * Reads a number, true, false or null.
+         */
+        private String readLiteral() throws IOException {
+            skipSpaces();
+            StringBuilder sb = new StringBuilder();
+            while (true) {
+                int c = peek();
+                if (c == -1 || c == ',' || c == ']' || c == '}' || Character.isWhitespace(c)) {
+                    break;
+                }
+                sb.append((char) read());
+            }
+            if (sb.length() == 0) {
+                throw new IOException("Malformed GeoJSON: value expected");
+            }
+            return sb.toString();
+        }
+
+        private void skipSpaces() throws IOException {
+            while (Character.isWhitespace(peek())) {
+                read();
+            }
+        }
+
+        private void expect(char expected) throws IOException {
+            int c = read();
+            if (c != expected) {
+                throw new IOException("Malformed GeoJSON: '" + expected + "' expected");
+            }
+        }
+
+        private int peek() throws IOException {
+            if (next == -2) {
+                next = reader.read();
+            }
+            return next;
+        }
+
+        private int read() throws IOException {
+            int c = peek();
+            next = -2;
+            return c;
+        }
+    }
+}
@@ -0,0 +1,74 @@
+/*
+Copyright 2008 WebAtlas
+Authors : Mathieu Bastian, Mathieu Jacomy, Julian Bilcke
+Website : http://www.gephi.org
+
+This file is part of Gephi.
+
+Gephi is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+Gephi is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Gephi.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.gephi.plugins.layout.geo;
+
+/**
+ * A list of latitude/longitude points, indexed by position, stored as
+ * fixed-point micro-degrees in two flat <code>int</code> arrays (8 bytes per
+ * point, about 11 cm of resolution). Used for the coordinates of the valid
+ * nodes and for the lines of the basemap; values are decoded on the fly when
+ * projected.
+ * <p>
+ * Only finite values can be stored: coordinates beyond +/-2147 degree do not
+ * fit and are saturated, and NaN would be read back as 0, so callers must
+ * leave non-finite points out.
+ *
+ * @author Alexis Jacomy
+ */
+final class GeoCoordinateStore {
+
+    private static final double UNITS_PER_DEGREE = 1000000;
+    private static final double DEGREES_PER_UNIT = 1 / UNITS_PER_DEGREE;
+    private final int[] lat;
+    private final int[] lon;
+
+    GeoCoordinateStore(int size) {
+        lat = new int[size];
+        lon = new int[size];
+    }
+
+    int size() {
+        return lat.length;
+    }
+
+    void set(int index, double latitude, double longitude) {
+        lat[index] = encode(latitude);
+        lon[index] = encode(longitude);
+    }
+
+    double getLatitude(int index) {
+        return lat[index] * DEGREES_PER_UNIT;
+    }
+
+    double getLongitude(int index) {
+        return lon[index] * DEGREES_PER_UNIT;
+    }
+
+    private static int encode(double degree) {
+        long units = Math.round(degree * UNITS_PER_DEGREE);
+        if (units > Integer.MAX_VALUE) {
+            return Integer.MAX_VALUE;
+        } else if (units < Integer.MIN_VALUE) {
+            return Integer.MIN_VALUE;
+        }
+        return (int) units;
+    }
+}
@@ -20,9 +20,12 @@ along with Gephi.  If not, see <http://www.gnu.org/licenses/>.
  */
 package org.gephi.plugins.layout.geo;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Vector;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.gephi.graph.api.Graph;
 import org.gephi.graph.api.GraphModel;
 import org.gephi.graph.api.Node;
@@ -33,6 +36,7 @@ import org.gephi.layout.spi.LayoutProperty;
 import org.gephi.ui.propertyeditor.NodeColumnNumbersEditor;
 import org.openide.util.Lookup;
 import org.openide.util.NbBundle;
+import org.openide.util.RequestProcessor;
 import org.gephi.dynamic.api.*;
 import org.gephi.data.attributes.type.*;
 import org.gephi.data.attributes.api.*;
@@ -43,17 +47,46 @@ import org.gephi.data.attributes.api.*;
  */
 public class GeoLayout implements Layout {
 
+    private static final RequestProcessor RP = new RequestProcessor("GeoLayout preview", 1);
+    private static final RequestProcessor BASEMAP_RP = new RequestProcessor("GeoLayout basemap export", 1);
+    private static final int PREVIEW_DELAY = 40;
+    private static final int CANCEL_CHECK_MASK = 0xFFF;
+    private static final int SKETCH_K = 200;
+    private static final double FIT_LOW = 0.01;
+    private static final double FIT_HIGH = 0.99;
     private GeoLayoutBuilder builder;
-    private GraphModel graphModel;
+    private volatile GraphModel graphModel;
     private boolean cancel;
     //Params
     private double focal = 150;
-    private double scale = 1000;
-    private boolean centered = true;
+    private volatile double scale = 1000;
+    private volatile boolean centered = true;
     private AttributeColumn latitude;
     private AttributeColumn longitude;
     private boolean radian = false;
-    private String projection = "Mercator";
+    private volatile String projection = "Mercator";
+    private volatile boolean autoFit = false;
+    private volatile double canvasSize = 4000;
+    private boolean livePreview = false;
+    private volatile boolean exportSizeAndColor = false;
+    private volatile MappedCoordinateExport exporter;
+    private volatile String basemapFile = "";
+    private volatile Basemap basemap;
+    private volatile BasemapLayer basemapLayer;
+    //Live preview
+    private volatile Coordinates coordinates;
+    private volatile Coordinates published;
+    private volatile Graph publishedGraph;
+    private volatile int publishedGeneration;
+    private Node[] spatialOrder;
+    private int spatialOrderGeneration;
+    private final AtomicInteger generation = new AtomicInteger();
+    private final RequestProcessor.Task previewTask = RP.create(new Runnable() {
+
+        public void run() {
+            preview();
+        }
+    });
     public static String[] rows = {"Mercator","Transverse Mercator","Miller cylindrical","Gall–Peters","Sinusoidal","Lambert cylindrical","Equirectangular","Winkel tripel"};
 
     public GeoLayout(GeoLayoutBuilder builder) {
@@ -62,6 +95,7 @@ public class GeoLayout implements Layout {
     }
 
     public void resetPropertiesValues() {
+        invalidateCoordinates();
         AttributeModel attModel = Lookup.getDefault().lookup(AttributeController.class).getModel();
         for (AttributeColumn c : attModel.getNodeTable().getColumns()) {
             if (c.getId().equalsIgnoreCase("latitude")
@@ -83,14 +117,26 @@ public class GeoLayout implements Layout {
     }
 
     public void goAlgo() {
+        // a full run always reads the attributes again, and wins over any
+        // pending preview
+        int gen = generation.incrementAndGet();
+        Coordinates coords = extractCoordinates();
+        coordinates = coords;
+        loadBasemap();
+        project(coords, gen);
+        cancel = true;
+    }
+
+    /**
+     * Reads the latitude and longitude of every node once, and splits the
+     * nodes between valid and unvalid ones. The result is kept to be reused
+     * by the live preview.
+     */
+    private Coordinates extractCoordinates() {
         double lon = 0;
         double lat = 0;
-        float nodeX = 0;
-        float nodeY = 0;
-        float averageX = 0;
-        float averageY = 0;
         Graph gr = graphModel.getGraph();
-        
+
         // try to handle dynamics
         DynamicController dc = Lookup.getDefault().lookup(DynamicController.class);
         DynamicModel dm = dc.getModel();
@@ -111,388 +157,334 @@ public class GeoLayout implements Layout {
         } else {
             graph = gr;
         }
-            
+
         Node[] nodes = graph.getNodes().toArray();
         Vector<Node> validNodes = new Vector<Node>();
         Vector<Node> unvalidNodes = new Vector<Node>();
+        // sized for the worst case, only the first validNodes.size() are used
+        GeoCoordinateStore store = new GeoCoordinateStore(nodes.length);
+        double sumLat = 0;
+        double sumLon = 0;
 
         // Set valid and non valid nodes:
         for(Node n: nodes){
             AttributeRow row = (AttributeRow) n.getNodeData().getAttributes();
-            if(row.getValue(latitude)!=null && row.getValue(longitude)!=null){
-                validNodes.add(n);
-            }else{
+            if(row.getValue(latitude)==null || row.getValue(longitude)==null){
                 unvalidNodes.add(n);
+                continue;
             }
-        }
 
-        // Mercantor
-        if(projection.equals("Mercator")){
-            double lambda0 = 0;
-
-            //determine lambda0:
-            for(Node n: validNodes){
-                AttributeRow row = (AttributeRow) n.getNodeData().getAttributes();
-                if ( isDynamic ) {
-                    lon = ((DynamicDouble)row.getValue(longitude)).getValue(currentInt, estimator);
-                } else {
-                    lon = ((Number) row.getValue(longitude)).doubleValue();
-                }
-                lambda0 += lon;
+            if ( isDynamic ) {
+                lat = ((DynamicDouble)row.getValue(latitude)).getValue(currentInt, estimator);
+                lon = ((DynamicDouble)row.getValue(longitude)).getValue(currentInt, estimator);
+            } else {
+                lat = ((Number) row.getValue(latitude)).doubleValue();
+                lon = ((Number) row.getValue(longitude)).doubleValue();
             }
 
-            lambda0 = lambda0/validNodes.size();
-            lambda0 = Math.toRadians(lambda0);
-
-            //apply the formula:
-            for(Node n: validNodes){
-                if (n.getNodeData().getLayoutData() == null || !(n.getNodeData().getLayoutData() instanceof GeoLayoutData)) {
-                    n.getNodeData().setLayoutData(new GeoLayoutData());
-                }
-
-                AttributeRow row = (AttributeRow) n.getNodeData().getAttributes();
-                if ( isDynamic ) {
-                    lat = ((DynamicDouble)row.getValue(latitude)).getValue(currentInt, estimator);
-                    lon = ((DynamicDouble)row.getValue(longitude)).getValue(currentInt, estimator);
-                } else {
-                    lat = ((Number) row.getValue(latitude)).doubleValue();
-                    lon = ((Number) row.getValue(longitude)).doubleValue();
-                }
-                
-                lat = Math.toRadians(lat);
-                lon = Math.toRadians(lon);
-
-                nodeX = (float)((lon-lambda0)*scale);
-                nodeY = (float)((Math.log(Math.tan(Math.PI/4+lat/2)))*scale);
-
-                averageX += nodeX;
-                averageY += nodeY;
-
-                n.getNodeData().setX(nodeX);
-                n.getNodeData().setY(nodeY);
+            // NaN or infinite coordinates cannot be stored nor projected
+            if(Double.isNaN(lat) || Double.isInfinite(lat) || Double.isNaN(lon) || Double.isInfinite(lon)){
+                unvalidNodes.add(n);
+                continue;
             }
 
-            averageX = averageX/validNodes.size();
-            averageY = averageY/validNodes.size();
+            store.set(validNodes.size(), lat, lon);
+            validNodes.add(n);
+            sumLat += lat;
+            sumLon += lon;
         }
 
-        // Transverse Mercantor
-        else if(projection.equals("Transverse Mercator")){
-            //apply the formula:
-            for(Node n: validNodes){
-                if (n.getNodeData().getLayoutData() == null || !(n.getNodeData().getLayoutData() instanceof GeoLayoutData)) {
-                    n.getNodeData().setLayoutData(new GeoLayoutData());
-                }
+        Coordinates coords = new Coordinates(
+                validNodes.toArray(new Node[validNodes.size()]),
+                unvalidNodes.toArray(new Node[unvalidNodes.size()]),
+                store);
 
-                AttributeRow row = (AttributeRow) n.getNodeData().getAttributes();
-                if ( isDynamic ) {
-                    lat = ((DynamicDouble)row.getValue(latitude)).getValue(currentInt, estimator);
-                    lon = ((DynamicDouble)row.getValue(longitude)).getValue(currentInt, estimator);
-                } else {
-                    lat = ((Number) row.getValue(latitude)).doubleValue();
-                    lon = ((Number) row.getValue(longitude)).doubleValue();
-                }
+        if(coords.validNodes.length>0){
+            coords.meanLat = sumLat/coords.validNodes.length;
+            coords.meanLon = sumLon/coords.validNodes.length;
+        }
 
-                lat = Math.toRadians(lat);
-                lon = Math.toRadians(lon);
+        return coords;
+    }
 
-                nodeX = (float)(lon*scale);
-                nodeY = (float)(scale/2*Math.log((1+Math.sin(lat))/(1-Math.sin(lat))));
+    /**
+     * Projects the extracted coordinates with the current parameters, and
+     * publishes the positions to the nodes at once.
+     *
+     * @return false if a newer run or preview cancelled this one
+     */
+    private boolean project(Coordinates coords, final int gen) {
+        // read once: the model may be replaced while projecting
+        GraphModel model = graphModel;
+        if(model==null){
+            return false;
+        }
+        Graph graph = model.getGraph();
+        Node[] validNodes = coords.validNodes;
+        Node[] unvalidNodes = coords.unvalidNodes;
+        float[] validX = new float[validNodes.length];
+        float[] validY = new float[validNodes.length];
+        float[] unvalidX = new float[unvalidNodes.length];
+        float[] unvalidY = new float[unvalidNodes.length];
+        double centerX = 0;
+        double centerY = 0;
+        double sumX = 0;
+        double sumY = 0;
+        double[] point = new double[2];
+        String currentProjection = projection;
+        double currentScale = scale;
+        // with auto-fit, project at scale 1 and measure the extents on the
+        // way; the scale is applied once it is known
+        boolean fit = autoFit;
+        double[] fitX = fit ? new double[validNodes.length] : null;
+        double[] fitY = fit ? new double[validNodes.length] : null;
+        QuantileSketch sketchX = new QuantileSketch(SKETCH_K);
+        QuantileSketch sketchY = new QuantileSketch(SKETCH_K);
+        GeoProjector projector = new GeoProjector(currentProjection, fit ? 1 : currentScale, coords.meanLat, coords.meanLon);
+
+        //apply the formula:
+        for(int i=0;i<validNodes.length;i++){
+            if((i & CANCEL_CHECK_MASK)==0 && gen!=generation.get()){
+                return false;
+            }
 
-                averageX += nodeX;
-                averageY += nodeY;
+            projector.project(coords.store.getLatitude(i), coords.store.getLongitude(i), point);
+            sumX += point[0];
+            sumY += point[1];
 
-                n.getNodeData().setX(nodeX);
-                n.getNodeData().setY(nodeY);
+            if(fit){
+                // kept in double until the scale is known
+                fitX[i] = point[0];
+                fitY[i] = point[1];
+                if(!Double.isInfinite(point[0]) && !Double.isNaN(point[0])) sketchX.update(point[0]);
+                if(!Double.isInfinite(point[1]) && !Double.isNaN(point[1])) sketchY.update(point[1]);
+            }else{
+                validX[i] = (float) point[0];
+                validY[i] = (float) point[1];
             }
-
-            averageX = averageX/validNodes.size();
-            averageY = averageY/validNodes.size();
         }
 
-        // Miller cylindrical
-        else if(projection.equals("Miller cylindrical")){
-            //apply the formula:
-            for(Node n: validNodes){
-                if (n.getNodeData().getLayoutData() == null || !(n.getNodeData().getLayoutData() instanceof GeoLayoutData)) {
-                    n.getNodeData().setLayoutData(new GeoLayoutData());
-                }
+        if(validNodes.length>0){
+            centerX = sumX/validNodes.length;
+            centerY = sumY/validNodes.length;
+        }
 
-                AttributeRow row = (AttributeRow) n.getNodeData().getAttributes();
-                if ( isDynamic ) {
-                    lat = ((DynamicDouble)row.getValue(latitude)).getValue(currentInt, estimator);
-                    lon = ((DynamicDouble)row.getValue(longitude)).getValue(currentInt, estimator);
-                } else {
-                    lat = ((Number) row.getValue(latitude)).doubleValue();
-                    lon = ((Number) row.getValue(longitude)).doubleValue();
+        //fit the 1st-99th percentile box in the canvas, centered on the box
+        //rather than on the barycenter, so that outliers do not matter
+        double[] box = null;
+        if(fit){
+            if(sketchX.getCount()>0 && sketchY.getCount()>0){
+                double xLow = sketchX.quantile(FIT_LOW);
+                double xHigh = sketchX.quantile(FIT_HIGH);
+                double yLow = sketchY.quantile(FIT_LOW);
+                double yHigh = sketchY.quantile(FIT_HIGH);
+                double extent = Math.max(xHigh-xLow, yHigh-yLow);
+                if(extent>0){
+                    currentScale = canvasSize/extent;
                 }
-
-                lat = Math.toRadians(lat);
-                lon = Math.toRadians(lon);
-
-                nodeX = (float)(lon*scale);
-                nodeY = (float)(Math.log(Math.tan(Math.PI/4+2*lat/5))*scale*5/4);
-
-                averageX += nodeX;
-                averageY += nodeY;
-
-                n.getNodeData().setX(nodeX);
-                n.getNodeData().setY(nodeY);
+                centerX = (xLow+xHigh)/2;
+                centerY = (yLow+yHigh)/2;
+                // xMin, xMax and yMin of the box, in final coordinates
+                box = new double[]{
+                    (xLow-centerX)*currentScale,
+                    (xHigh-centerX)*currentScale,
+                    (yLow-centerY)*currentScale};
+            }
+            centerX *= currentScale;
+            centerY *= currentScale;
+
+            // the fitted scale is huge for small areas: always recenter in
+            // double before the cast, or the nodes collapse on the float grid
+            for(int i=0;i<validNodes.length;i++){
+                validX[i] = (float) (fitX[i]*currentScale - centerX);
+                validY[i] = (float) (fitY[i]*currentScale - centerY);
             }
-
-            averageX = averageX/validNodes.size();
-            averageY = averageY/validNodes.size();
         }
 
-        // Gall–Peters
-        else if(projection.equals("Gall–Peters")){
-            //apply the formula:
-            for(Node n: validNodes){
-                if (n.getNodeData().getLayoutData() == null || !(n.getNodeData().getLayoutData() instanceof GeoLayoutData)) {
-                    n.getNodeData().setLayoutData(new GeoLayoutData());
+        boolean placeUnvalid = validNodes.length>0 && unvalidNodes.length>0;
+        if(placeUnvalid){
+            double xMin = validX[0];
+            double xMax = validX[0];
+            double yMin = validY[0];
+
+            if(box!=null){
+                // below the fitted box, not below the outliers
+                xMin = box[0];
+                xMax = box[1];
+                yMin = box[2];
+            }else{
+                for(int i=0;i<validNodes.length;i++){
+                    if(validX[i]<xMin) xMin = validX[i];
+                    if(validX[i]>xMax) xMax = validX[i];
+                    if(validY[i]<yMin) yMin = validY[i];
                 }
+            }
 
-                AttributeRow row = (AttributeRow) n.getNodeData().getAttributes();
-                if ( isDynamic ) {
-                    lat = ((DynamicDouble)row.getValue(latitude)).getValue(currentInt, estimator);
-                    lon = ((DynamicDouble)row.getValue(longitude)).getValue(currentInt, estimator);
-                } else {
-                    lat = ((Number) row.getValue(latitude)).doubleValue();
-                    lon = ((Number) row.getValue(longitude)).doubleValue();
+            if(unvalidNodes.length>1){
+                double step=(xMax-xMin)/(unvalidNodes.length-1);
+                for(int i=0;i<unvalidNodes.length;i++){
+                    unvalidX[i] = (float) (xMin+i*step);
+                    unvalidY[i] = (float) (yMin-step);
                 }
-
-                lat = Math.toRadians(lat);
-                lon = Math.toRadians(lon);
-
-                nodeX = (float)(lon*scale);
-                nodeY = (float)(2*scale*Math.sin(lat));
-
-                averageX += nodeX;
-                averageY += nodeY;
-
-                n.getNodeData().setX(nodeX);
-                n.getNodeData().setY(nodeY);
+            }else{
+                unvalidX[0] = 10000;
+                unvalidY[0] = 10000;
             }
+        }
 
-            averageX = averageX/validNodes.size();
-            averageY = averageY/validNodes.size();
+        //recenter the graph (always done with auto-fit)
+        if(!centered && !fit){
+            centerX = 0;
+            centerY = 0;
         }
+        float averageX = fit ? 0 : (float) centerX;
+        float averageY = fit ? 0 : (float) centerY;
 
-        // Sinusoidal
-        else if(projection.equals("Sinusoidal")){
-            double lambda0 = 0;
+        Basemap b = basemap;
+        final BasemapLayer layer = b != null
+                ? b.getLayer(currentProjection, currentScale, coords.meanLat, coords.meanLon, centerX, centerY)
+                : null;
 
-            //determine lambda0:
-            for(Node n: validNodes){
-                AttributeRow row = (AttributeRow) n.getNodeData().getAttributes();
-                lon = ((Number) row.getValue(longitude)).doubleValue();
-                lambda0 += lon;
+        graph.writeLock();
+        try {
+            if(gen!=generation.get()){
+                return false;
             }
 
-            lambda0 = lambda0/validNodes.size();
-            lambda0 = Math.toRadians(lambda0);
-
-            //apply the formula:
-            for(Node n: validNodes){
+            for(int i=0;i<validNodes.length;i++){
+                Node n = validNodes[i];
                 if (n.getNodeData().getLayoutData() == null || !(n.getNodeData().getLayoutData() instanceof GeoLayoutData)) {
                     n.getNodeData().setLayoutData(new GeoLayoutData());
                 }
+                n.getNodeData().setX(validX[i] - averageX);
+                n.getNodeData().setY(validY[i] - averageY);
+            }
 
-                AttributeRow row = (AttributeRow) n.getNodeData().getAttributes();
-                if ( isDynamic ) {
-                    lat = ((DynamicDouble)row.getValue(latitude)).getValue(currentInt, estimator);
-                    lon = ((DynamicDouble)row.getValue(longitude)).getValue(currentInt, estimator);
-                } else {
-                    lat = ((Number) row.getValue(latitude)).doubleValue();
-                    lon = ((Number) row.getValue(longitude)).doubleValue();
+            if(placeUnvalid){
+                for(int i=0;i<unvalidNodes.length;i++){
+                    unvalidNodes[i].getNodeData().setX(unvalidX[i] - averageX);
+                    unvalidNodes[i].getNodeData().setY(unvalidY[i] - averageY);
                 }
-
-                lat = Math.toRadians(lat);
-                lon = Math.toRadians(lon);
-
-                nodeX = (float)((lon-lambda0)*Math.cos(lat)*scale);
-                nodeY = (float)(scale*lat);
-
-                averageX += nodeX;
-                averageY += nodeY;
-
-                n.getNodeData().setX(nodeX);
-                n.getNodeData().setY(nodeY);
             }
-
-            averageX = averageX/validNodes.size();
-            averageY = averageY/validNodes.size();
+            published = coords;
+            publishedGraph = graph;
+            publishedGeneration = gen;
+            basemapLayer = layer;
+            if(fit){
+                scale = currentScale;
+            }
+        } finally {
+            graph.writeUnlock();
         }
 
-        // Lambert cylindrical equal-area
-        else if(projection.equals("Lambert cylindrical")){
-            double lambda0 = 0;
-            double phi0 = 0;
-
-            //determine lambda0:
-            for(Node n: validNodes){
-                AttributeRow row = (AttributeRow) n.getNodeData().getAttributes();
-                lat = ((Number) row.getValue(latitude)).doubleValue();
-                lon = ((Number) row.getValue(longitude)).doubleValue();
-                lambda0 += lon;
-                phi0 += lat;
+        final MappedCoordinateExport e = exporter;
+        if(e!=null){
+            int[] permutation = SpatialOrder.permutation(validX, validY);
+            Node[] orderedNodes = orderSpatially(validNodes, unvalidNodes, permutation);
+            float[] exportX = new float[orderedNodes.length];
+            float[] exportY = new float[orderedNodes.length];
+            for(int i=0;i<permutation.length;i++){
+                exportX[i] = validX[permutation[i]] - averageX;
+                exportY[i] = validY[permutation[i]] - averageY;
             }
-
-            lambda0 = lambda0/validNodes.size();
-            phi0 = phi0/validNodes.size();
-
-            lambda0 = Math.toRadians(lambda0);
-            phi0 = Math.toRadians(phi0);
-
-            //apply the formula:
-            for(Node n: validNodes){
-                if (n.getNodeData().getLayoutData() == null || !(n.getNodeData().getLayoutData() instanceof GeoLayoutData)) {
-                    n.getNodeData().setLayoutData(new GeoLayoutData());
+            for(int i=0;i<unvalidNodes.length;i++){
+                int j = validNodes.length+i;
+                if(placeUnvalid){
+                    exportX[j] = unvalidX[i] - averageX;
+                    exportY[j] = unvalidY[i] - averageY;
+                }else{
+                    exportX[j] = unvalidNodes[i].getNodeData().x();
+                    exportY[j] = unvalidNodes[i].getNodeData().y();
                 }
-
-                AttributeRow row = (AttributeRow) n.getNodeData().getAttributes();
-                if ( isDynamic ) {
-                    lat = ((DynamicDouble)row.getValue(latitude)).getValue(currentInt, estimator);
-                    lon = ((DynamicDouble)row.getValue(longitude)).getValue(currentInt, estimator);
-                } else {
-                    lat = ((Number) row.getValue(latitude)).doubleValue();
-                    lon = ((Number) row.getValue(longitude)).doubleValue();
-                }
-
-                lat = Math.toRadians(lat);
-                lon = Math.toRadians(lon);
-
-                nodeX = (float)((lon-lambda0)*Math.cos(phi0)*scale);
-                nodeY = (float)(scale*Math.sin(lat)/Math.cos(phi0));
-
-                averageX += nodeX;
-                averageY += nodeY;
-
-                n.getNodeData().setX(nodeX);
-                n.getNodeData().setY(nodeY);
+            }
+            try {
+                e.export(gen, orderedNodes, exportX, exportY, exportSizeAndColor);
+            } catch (IOException ex) {
+                ex.printStackTrace();
             }
 
-            averageX = averageX/validNodes.size();
-            averageY = averageY/validNodes.size();
-        }
-
-        // Equirectangular
-        else if(projection.equals("Equirectangular")){
-
-            //apply the formula:
-            for(Node n: validNodes){
-                if (n.getNodeData().getLayoutData() == null || !(n.getNodeData().getLayoutData() instanceof GeoLayoutData)) {
-                    n.getNodeData().setLayoutData(new GeoLayoutData());
-                }
-
-                AttributeRow row = (AttributeRow) n.getNodeData().getAttributes();
-                if ( isDynamic ) {
-                    lat = ((DynamicDouble)row.getValue(latitude)).getValue(currentInt, estimator);
-                    lon = ((DynamicDouble)row.getValue(longitude)).getValue(currentInt, estimator);
-                } else {
-                    lat = ((Number) row.getValue(latitude)).doubleValue();
-                    lon = ((Number) row.getValue(longitude)).doubleValue();
-                }
-
-                lat = Math.toRadians(lat);
-                lon = Math.toRadians(lon);
-
-                nodeX = (float)(scale*lon);
-                nodeY = (float)(scale*lat);
-
-                averageX += nodeX;
-                averageY += nodeY;
+            // simplifying the basemap is slow: only when it changed, and
+            // not on the preview thread
+            if(!e.isBasemapExported(layer)){
+                BASEMAP_RP.post(new Runnable() {
 
-                n.getNodeData().setX(nodeX);
-                n.getNodeData().setY(nodeY);
+                    public void run() {
+                        exportBasemap(e, layer, gen);
+                    }
+                });
             }
-
-            averageX = averageX/validNodes.size();
-            averageY = averageY/validNodes.size();
         }
 
-        // Winkel tripel
-        else if(projection.equals("Winkel tripel")){
-            double alpha = 0;
-
-            //apply the formula:
-            for(Node n: validNodes){
-                if (n.getNodeData().getLayoutData() == null || !(n.getNodeData().getLayoutData() instanceof GeoLayoutData)) {
-                    n.getNodeData().setLayoutData(new GeoLayoutData());
-                }
-                
-                AttributeRow row = (AttributeRow) n.getNodeData().getAttributes();
-                if ( isDynamic ) {
-                    lat = ((DynamicDouble)row.getValue(latitude)).getValue(currentInt, estimator);
-                    lon = ((DynamicDouble)row.getValue(longitude)).getValue(currentInt, estimator);
-                } else {
-                    lat = ((Number) row.getValue(latitude)).doubleValue();
-                    lon = ((Number) row.getValue(longitude)).doubleValue();
-                }
-
-                lat = Math.toRadians(lat);
-                lon = Math.toRadians(lon);
-
-                alpha = Math.acos(Math.cos(lon/2)*2/Math.PI);
-
-                nodeX = (float)(scale*((lon*2/Math.PI)+(2*Math.cos(lat)*Math.sin(lon/2)*alpha/Math.sin(alpha))));
-                nodeY = (float)(scale*(lat+Math.sin(lat)*alpha/Math.sin(alpha)));
-
-                averageX += nodeX;
-                averageY += nodeY;
+        return true;
+    }
 
-                n.getNodeData().setX(nodeX);
-                n.getNodeData().setY(nodeY);
+    /**
+     * Simplifies every zoom level of the basemap layer and writes it next to
+     * the export file. Gives up as soon as a newer run or preview started,
+     * which posts its own layer.
+     */
+    private void exportBasemap(MappedCoordinateExport e, BasemapLayer layer, int gen) {
+        float[][][] levels = new float[layer != null ? BasemapLayer.ZOOM_LEVELS : 0][][];
+        for (int z = 0; z < levels.length; z++) {
+            if (gen != generation.get()) {
+                return;
             }
-
-            averageX = averageX/validNodes.size();
-            averageY = averageY/validNodes.size();
+            levels[z] = layer.getParts(z);
+        }
+        try {
+            e.exportBasemap(layer, levels);
+        } catch (IOException ex) {
+            ex.printStackTrace();
         }
+    }
 
-        if(validNodes.size()>0 && unvalidNodes.size()>0){
-            Node tempNode = validNodes.elementAt(0);
-            double xMin = tempNode.getNodeData().x();
-            double xMax = tempNode.getNodeData().x();
-            double yMin = tempNode.getNodeData().y();
-            double xTemp = 0;
-            double yTemp = 0;
-
-            for(Node n: validNodes){
-                xTemp = n.getNodeData().x();
-                yTemp = n.getNodeData().y();
-
-                if(xTemp<xMin) xMin = xTemp;
-                if(xTemp>xMax) xMax = xTemp;
-                if(yTemp<yMin) yMin = yTemp;
+    /**
+     * Loads the basemap file if it changed since the last run. The projected
+     * layers are computed lazily, when read or exported.
+     */
+    private void loadBasemap() {
+        String file = basemapFile;
+        Basemap b = basemap;
+        if (file.length() == 0) {
+            basemap = null;
+        } else if (b == null || !b.getFile().getPath().equals(file)) {
+            try {
+                basemap = Basemap.load(new File(file));
+            } catch (IOException ex) {
+                basemap = null;
+                ex.printStackTrace();
             }
+        }
+    }
 
-            if(unvalidNodes.size()>1){
-                double i=0;
-                double step=(xMax-xMin)/(unvalidNodes.size()-1);
-                for(Node n: unvalidNodes){
-                    n.getNodeData().setX((float) (xMin+i*step));
-                    n.getNodeData().setY((float) (yMin-step));
-                    i++;
-                }
-            }else{
-                tempNode = unvalidNodes.elementAt(0);
-                tempNode.getNodeData().setX(10000);
-                tempNode.getNodeData().setY(10000);
-            }
+    /**
+     * Re-projects the last extracted coordinates in background. Any
+     * projection still running is cancelled.
+     *
+     * @param delay 0 for discrete changes (projection, flags), or
+     * <code>PREVIEW_DELAY</code> to wait for typed values to stop changing
+     */
+    private void schedulePreview(int delay) {
+        if (livePreview && coordinates != null && graphModel != null) {
+            generation.incrementAndGet();
+            previewTask.schedule(delay);
         }
+    }
 
-        //recenter the graph
-        if(centered==true){
-            for(Node n: nodes){
-                nodeX = n.getNodeData().x() - averageX;
-                nodeY = n.getNodeData().y() - averageY;
+    /**
+     * Forgets the extracted coordinates, and cancels any preview still
+     * projecting them.
+     */
+    private void invalidateCoordinates() {
+        coordinates = null;
+        generation.incrementAndGet();
+    }
 
-                n.getNodeData().setX(nodeX);
-                n.getNodeData().setY(nodeY);
-            }
+    private void preview() {
+        Coordinates coords = coordinates;
+        if (coords != null && graphModel != null) {
+            project(coords, generation.get());
         }
-
-        cancel = true;
     }
 
     public void endAlgo() {
@@ -532,12 +524,48 @@ public class GeoLayout implements Layout {
                     GEOLAYOUT,
                     NbBundle.getMessage(GeoLayout.class, "GeoLayout.projection.desc"),
                     "getProjection", "setProjection", CustomComboBoxEditor.class));
+            properties.add(LayoutProperty.createProperty(
+                    this, Boolean.class,
+                    NbBundle.getMessage(GeoLayout.class, "GeoLayout.autoFit.name"),
+                    GEOLAYOUT,
+                    NbBundle.getMessage(GeoLayout.class, "GeoLayout.autoFit.desc"),
+                    "isAutoFit", "setAutoFit"));
+            properties.add(LayoutProperty.createProperty(
+                    this, Double.class,
+                    NbBundle.getMessage(GeoLayout.class, "GeoLayout.canvasSize.name"),
+                    GEOLAYOUT,
+                    NbBundle.getMessage(GeoLayout.class, "GeoLayout.canvasSize.desc"),
+                    "getCanvasSize", "setCanvasSize"));
             properties.add(LayoutProperty.createProperty(
                     this, Boolean.class,
                     NbBundle.getMessage(GeoLayout.class, "GeoLayout.centered.name"),
                     GEOLAYOUT,
                     NbBundle.getMessage(GeoLayout.class, "GeoLayout.centered.desc"),
                     "isCentered", "setCentered"));
+            properties.add(LayoutProperty.createProperty(
+                    this, Boolean.class,
+                    NbBundle.getMessage(GeoLayout.class, "GeoLayout.livePreview.name"),
+                    GEOLAYOUT,
+                    NbBundle.getMessage(GeoLayout.class, "GeoLayout.livePreview.desc"),
+                    "isLivePreview", "setLivePreview"));
+            properties.add(LayoutProperty.createProperty(
+                    this, String.class,
+                    NbBundle.getMessage(GeoLayout.class, "GeoLayout.exportFile.name"),
+                    GEOLAYOUT,
+                    NbBundle.getMessage(GeoLayout.class, "GeoLayout.exportFile.desc"),
+                    "getExportFile", "setExportFile"));
+            properties.add(LayoutProperty.createProperty(
+                    this, Boolean.class,
+                    NbBundle.getMessage(GeoLayout.class, "GeoLayout.exportSizeAndColor.name"),
+                    GEOLAYOUT,
+                    NbBundle.getMessage(GeoLayout.class, "GeoLayout.exportSizeAndColor.desc"),
+                    "isExportSizeAndColor", "setExportSizeAndColor"));
+            properties.add(LayoutProperty.createProperty(
+                    this, String.class,
+                    NbBundle.getMessage(GeoLayout.class, "GeoLayout.basemapFile.name"),
+                    GEOLAYOUT,
+                    NbBundle.getMessage(GeoLayout.class, "GeoLayout.basemapFile.desc"),
+                    "getBasemapFile", "setBasemapFile"));
         } catch (Exception e) {
             e.printStackTrace();
         }
@@ -551,6 +579,67 @@ public class GeoLayout implements Layout {
 
     public void setCentered(Boolean centered) {
         this.centered = centered;
+        schedulePreview(0);
+    }
+
+    public Boolean isLivePreview() {
+        return livePreview;
+    }
+
+    public void setLivePreview(Boolean livePreview) {
+        this.livePreview = livePreview;
+        schedulePreview(0);
+    }
+
+    public String getExportFile() {
+        MappedCoordinateExport e = exporter;
+        return e != null ? e.getFile().getPath() : "";
+    }
+
+    public void setExportFile(String exportFile) {
+        MappedCoordinateExport old = exporter;
+        if (old != null && old.getFile().getPath().equals(exportFile)) {
+            return;
+        }
+        exporter = exportFile != null && exportFile.trim().length() > 0
+                ? new MappedCoordinateExport(new File(exportFile.trim())) : null;
+        if (old != null) {
+            old.close();
+        }
+    }
+
+    public Boolean isExportSizeAndColor() {
+        return exportSizeAndColor;
+    }
+
+    public void setExportSizeAndColor(Boolean exportSizeAndColor) {
+        this.exportSizeAndColor = exportSizeAndColor;
+    }
+
+    public String getBasemapFile() {
+        return basemapFile;
+    }
+
+    public void setBasemapFile(String basemapFile) {
+        this.basemapFile = basemapFile != null ? basemapFile.trim() : "";
+    }
+
+    public Boolean isAutoFit() {
+        return autoFit;
+    }
+
+    public void setAutoFit(Boolean autoFit) {
+        this.autoFit = autoFit;
+        schedulePreview(0);
+    }
+
+    public Double getCanvasSize() {
+        return canvasSize;
+    }
+
+    public void setCanvasSize(Double canvasSize) {
+        this.canvasSize = canvasSize;
+        schedulePreview(PREVIEW_DELAY);
     }
 
     public String getProjection() {
@@ -559,22 +648,92 @@ public class GeoLayout implements Layout {
 
     public void setProjection(String projection) {
         this.projection = projection;
+        schedulePreview(0);
     }
 
     public void setGraphModel(GraphModel graphModel) {
         this.graphModel = graphModel;
+        invalidateCoordinates();
     }
 
     public LayoutBuilder getBuilder() {
         return builder;
     }
 
+    /**
+     * Returns the nodes positioned by the last run or preview, ordered so
+     * that nodes close on the plan are close in the array (Morton order).
+     * Spatial post-processing should iterate in this order.
+     * <p>
+     * The order is computed on the first call after each run or preview,
+     * from the published positions.
+     *
+     * @return a copy of the ordered nodes, or null if the layout has not run
+     * yet
+     */
+    public synchronized Node[] getSpatialOrder() {
+        while (spatialOrder == null || spatialOrderGeneration != publishedGeneration) {
+            Graph graph = publishedGraph;
+            if (graph == null) {
+                return null;
+            }
+
+            // positions, nodes and generation are published together
+            // under the write lock
+            graph.readLock();
+            try {
+                if (graph != publishedGraph) {
+                    // published to another graph meanwhile
+                    continue;
+                }
+                Coordinates coords = published;
+                float[] x = new float[coords.validNodes.length];
+                float[] y = new float[coords.validNodes.length];
+                for (int i = 0; i < x.length; i++) {
+                    x[i] = coords.validNodes[i].getNodeData().x();
+                    y[i] = coords.validNodes[i].getNodeData().y();
+                }
+                spatialOrderGeneration = publishedGeneration;
+                spatialOrder = orderSpatially(coords.validNodes, coords.unvalidNodes,
+                        SpatialOrder.permutation(x, y));
+            } finally {
+                graph.readUnlock();
+            }
+        }
+        return spatialOrder.clone();
+    }
+
+    /**
+     * Valid nodes along the Morton curve, then the unvalid ones as lined up.
+     */
+    private static Node[] orderSpatially(Node[] validNodes, Node[] unvalidNodes, int[] permutation) {
+        Node[] orderedNodes = new Node[validNodes.length+unvalidNodes.length];
+        for(int i=0;i<permutation.length;i++){
+            orderedNodes[i] = validNodes[permutation[i]];
+        }
+        System.arraycopy(unvalidNodes, 0, orderedNodes, validNodes.length, unvalidNodes.length);
+        return orderedNodes;
+    }
+
+    /**
+     * Returns the basemap projected like the nodes by the last run or
+     * preview, to be drawn behind the graph. It is also written next to the
+     * export file, if one is set.
+     *
+     * @return the basemap layer, or null if no basemap file is set or it
+     * could not be read
+     */
+    public BasemapLayer getBasemapLayer() {
+        return basemapLayer;
+    }
+
     public Double getScale() {
         return scale;
     }
 
     public void setScale(Double scale) {
         this.scale = scale;
+        schedulePreview(PREVIEW_DELAY);
     }
 
     public AttributeColumn getLatitude() {
@@ -583,6 +742,7 @@ public class GeoLayout implements Layout {
 
     public void setLatitude(AttributeColumn latitude) {
         this.latitude = latitude;
+        invalidateCoordinates();
     }
 
     public AttributeColumn getLongitude() {
@@ -591,12 +751,28 @@ public class GeoLayout implements Layout {
 
     public void setLongitude(AttributeColumn longitude) {
         this.longitude = longitude;
+        invalidateCoordinates();
     }
 
-    private static class GeoLayoutData implements LayoutData {
+    /**
+     * Coordinates read from the attributes by the last run.
+     */
+    private static class Coordinates {
+
+        final Node[] validNodes;
+        final Node[] unvalidNodes;
+        //Indexed as validNodes, may be longer
+        final GeoCoordinateStore store;
+        double meanLat = 0;
+        double meanLon = 0;
+
+        Coordinates(Node[] validNodes, Node[] unvalidNodes, GeoCoordinateStore store) {
+            this.validNodes = validNodes;
+            this.unvalidNodes = unvalidNodes;
+            this.store = store;
+        }
+    }
 
-        //Data
-        public double x = 0f;
-        public double y = 0f;
+    private static class GeoLayoutData implements LayoutData {
     }
 }
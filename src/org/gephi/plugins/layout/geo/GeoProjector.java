@@ -0,0 +1,120 @@
+/*
+Copyright 2008 WebAtlas
+Authors : Mathieu Bastian, Mathieu Jacomy, Julian Bilcke
+Website : http://www.gephi.org
+
+This file is part of Gephi.
+
+Gephi is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+Gephi is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Gephi.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.gephi.plugins.layout.geo;
+
+/**
+ * Projects a latitude/longitude couple (in degree) on the plan, with one of
+ * the projections listed in <code>GeoLayout.rows</code>. The projection name
+ * is resolved once, so that the projection loop only does the maths.
+ *
+ * @author Alexis Jacomy
+ */
+final class GeoProjector {
+
+    private static final int MERCATOR = 0;
+    private static final int TRANSVERSE_MERCATOR = 1;
+    private static final int MILLER = 2;
+    private static final int GALL_PETERS = 3;
+    private static final int SINUSOIDAL = 4;
+    private static final int LAMBERT = 5;
+    private static final int EQUIRECTANGULAR = 6;
+    private static final int WINKEL_TRIPEL = 7;
+    private final int type;
+    private final double scale;
+    private final double lambda0;
+    private final double phi0;
+
+    /**
+     * @param projection one of <code>GeoLayout.rows</code>
+     * @param scale the virtual radius of the Earth
+     * @param meanLat average latitude of the valid nodes, in degree
+     * @param meanLon average longitude of the valid nodes, in degree
+     */
+    GeoProjector(String projection, double scale, double meanLat, double meanLon) {
+        int t = -1;
+        for (int i = 0; i < GeoLayout.rows.length; i++) {
+            if (GeoLayout.rows[i].equals(projection)) {
+                t = i;
+                break;
+            }
+        }
+        if (t == -1) {
+            throw new IllegalArgumentException("Unknown projection: " + projection);
+        }
+        this.type = t;
+        this.scale = scale;
+        this.lambda0 = Math.toRadians(meanLon);
+        this.phi0 = Math.toRadians(meanLat);
+    }
+
+    /**
+     * Writes the projected x and y of the given point in <code>out[0]</code>
+     * and <code>out[1]</code>.
+     */
+    void project(double lat, double lon, double[] out) {
+        lat = Math.toRadians(lat);
+        lon = Math.toRadians(lon);
+
+        switch (type) {
+            // Mercantor
+            case MERCATOR:
+                out[0] = (lon - lambda0) * scale;
+                out[1] = (Math.log(Math.tan(Math.PI / 4 + lat / 2))) * scale;
+                break;
+            // Transverse Mercantor
+            case TRANSVERSE_MERCATOR:
+                out[0] = lon * scale;
+                out[1] = scale / 2 * Math.log((1 + Math.sin(lat)) / (1 - Math.sin(lat)));
+                break;
+            // Miller cylindrical
+            case MILLER:
+                out[0] = lon * scale;
+                out[1] = Math.log(Math.tan(Math.PI / 4 + 2 * lat / 5)) * scale * 5 / 4;
+                break;
+            // Gall–Peters
+            case GALL_PETERS:
+                out[0] = lon * scale;
+                out[1] = 2 * scale * Math.sin(lat);
+                break;
+            // Sinusoidal
+            case SINUSOIDAL:
+                out[0] = (lon - lambda0) * Math.cos(lat) * scale;
+                out[1] = scale * lat;
+                break;
+            // Lambert cylindrical equal-area
+            case LAMBERT:
+                out[0] = (lon - lambda0) * Math.cos(phi0) * scale;
+                out[1] = scale * Math.sin(lat) / Math.cos(phi0);
+                break;
+            // Equirectangular
+            case EQUIRECTANGULAR:
+                out[0] = scale * lon;
+                out[1] = scale * lat;
+                break;
+            // Winkel tripel
+            case WINKEL_TRIPEL:
+                double alpha = Math.acos(Math.cos(lon / 2) * 2 / Math.PI);
+                out[0] = scale * ((lon * 2 / Math.PI) + (2 * Math.cos(lat) * Math.sin(lon / 2) * alpha / Math.sin(alpha)));
+                out[1] = scale * (lat + Math.sin(lat) * alpha / Math.sin(alpha));
+                break;
+        }
+    }
+}
@@ -0,0 +1,308 @@
+/*
+Copyright 2008 WebAtlas
+Authors : Mathieu Bastian, Mathieu Jacomy, Julian Bilcke
+Website : http://www.gephi.org
+
+This file is part of Gephi.
+
+Gephi is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+Gephi is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Gephi.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.gephi.plugins.layout.geo;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import org.gephi.graph.api.Node;
+import org.gephi.graph.api.NodeData;
+
+/**
+ * Writes the node positions in a memory-mapped binary file, that an external
+ * renderer can map and read without parsing. Every export rewrites the same
+ * file in place.
+ * <p>
+ * Layout, little-endian:
+ * <pre>
+ * offset  type   content
+ * 0       int    magic, 'GEOL'
+ * 4       int    format version
+ * 8       long   generation, odd while an export is being written
+ * 16      int    number of records
+ * 20      int    flags (FLAG_SIZE, FLAG_COLOR)
+ * 24      int    record length in bytes
+ * 28      int    layout run, increasing
+ * 32      ...    records: int node index, float x, float y,
+ *                [float size], [float r, float g, float b]
+ * ...     int[]  id table: number of records + 1 offsets, relative to the
+ *                end of the offsets; the id of record i is the UTF-8 bytes
+ *                between offsets i and i + 1
+ * ...     byte[] UTF-8 ids
+ * </pre>
+ * The node index is the internal number Gephi gives to the node: it is only
+ * meaningful while the graph is open, and is not the node id of the
+ * imported file; a reader that matches the nodes with other data must use
+ * the id table.
+ * <p>
+ * The basemap is written in a second file, named after the first one with
+ * a <code>.basemap</code> suffix, and only rewritten when the basemap
+ * layer changes:
+ * <pre>
+ * offset  type   content
+ * 0       int    magic, 'GEOB'
+ * 4       int    format version
+ * 8       long   generation, odd while the basemap is being written
+ * 16      int    number of zoom levels, 0 without basemap
+ * 32      ...    for each zoom level, from the coarsest:
+ *                int number of lines, int number of vertices,
+ *                int[lines] vertices per line, float[vertices] x and y
+ * </pre>
+ * A reader reads the generation, then the content, then the generation
+ * again: the content is consistent if both values are equal and even.
+ * The files only grow, so a reader must rely on the counts of the header.
+ *
+ * @author Alexis Jacomy
+ */
+final class MappedCoordinateExport {
+
+    static final int MAGIC = 0x47454F4C;
+    static final int BASEMAP_MAGIC = 0x47454F42;
+    static final int VERSION = 3;
+    static final int FLAG_SIZE = 1;
+    static final int FLAG_COLOR = 2;
+    private static final int HEADER_LENGTH = 32;
+    private static final int GENERATION_OFFSET = 8;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private final File file;
+    private final MappedFile nodeFile;
+    private final MappedFile basemapFile;
+    private int lastRun = Integer.MIN_VALUE;
+    //Guarded by basemapFile
+    private BasemapLayer lastBasemap;
+
+    MappedCoordinateExport(File file) {
+        this.file = file;
+        nodeFile = new MappedFile(file, MAGIC);
+        basemapFile = new MappedFile(new File(file.getPath() + ".basemap"), BASEMAP_MAGIC);
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    /**
+     * Writes the given positions of the nodes, in the given order. Does
+     * nothing once closed, or if a later run has already been exported.
+     *
+     * @param run the generation of the layout run, increasing
+     */
+    synchronized void export(int run, Node[] nodes, float[] x, float[] y, boolean sizeAndColor) throws IOException {
+        if (nodeFile.closed || run < lastRun) {
+            return;
+        }
+        lastRun = run;
+        int flags = sizeAndColor ? FLAG_SIZE | FLAG_COLOR : 0;
+        int recordLength = sizeAndColor ? 28 : 12;
+        long length = HEADER_LENGTH + (long) recordLength * nodes.length;
+
+        byte[][] ids = new byte[nodes.length][];
+        long idsLength = 0;
+        for (int i = 0; i < nodes.length; i++) {
+            ids[i] = nodes[i].getNodeData().getId().getBytes(UTF8);
+            idsLength += ids[i].length;
+        }
+        length += 4L * (nodes.length + 1) + idsLength;
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException("Too many nodes or ids to export in " + file);
+        }
+        MappedByteBuffer buffer = nodeFile.beginWrite((int) length);
+
+        buffer.position(HEADER_LENGTH);
+        for (int i = 0; i < nodes.length; i++) {
+            buffer.putInt(nodes[i].getId());
+            buffer.putFloat(x[i]);
+            buffer.putFloat(y[i]);
+            if (sizeAndColor) {
+                NodeData data = nodes[i].getNodeData();
+                buffer.putFloat(data.getSize());
+                buffer.putFloat(data.r());
+                buffer.putFloat(data.g());
+                buffer.putFloat(data.b());
+            }
+        }
+
+        int offset = 0;
+        buffer.putInt(offset);
+        for (byte[] id : ids) {
+            offset += id.length;
+            buffer.putInt(offset);
+        }
+        for (byte[] id : ids) {
+            buffer.put(id);
+        }
+
+        buffer.putInt(16, nodes.length);
+        buffer.putInt(20, flags);
+        buffer.putInt(24, recordLength);
+        buffer.putInt(28, run);
+        nodeFile.endWrite();
+    }
+
+    /**
+     * @return true if the given layer is the last one written, so that
+     * callers can skip simplifying it again
+     */
+    boolean isBasemapExported(BasemapLayer basemap) {
+        synchronized (basemapFile) {
+            return basemap == lastBasemap;
+        }
+    }
+
+    /**
+     * Writes the basemap file, unless this layer is already the last one
+     * written. Does nothing once closed.
+     *
+     * @param basemap the layer, or null to write an empty basemap
+     * @param levels the lines of every zoom level of the layer, none if the
+     * layer is null
+     */
+    void exportBasemap(BasemapLayer basemap, float[][][] levels) throws IOException {
+        synchronized (basemapFile) {
+            if (basemapFile.closed || basemap == lastBasemap) {
+                return;
+            }
+            long length = HEADER_LENGTH;
+            for (float[][] parts : levels) {
+                length += 8;
+                for (float[] part : parts) {
+                    length += 4 + 4L * part.length;
+                }
+            }
+            if (length > Integer.MAX_VALUE) {
+                throw new IOException("Too many basemap vertices to export in " + basemapFile.file);
+            }
+            MappedByteBuffer buffer = basemapFile.beginWrite((int) length);
+
+            buffer.position(HEADER_LENGTH);
+            for (float[][] parts : levels) {
+                int vertices = 0;
+                for (float[] part : parts) {
+                    vertices += part.length / 2;
+                }
+                buffer.putInt(parts.length);
+                buffer.putInt(vertices);
+                for (float[] part : parts) {
+                    buffer.putInt(part.length / 2);
+                }
+                for (float[] part : parts) {
+                    for (float f : part) {
+                        buffer.putFloat(f);
+                    }
+                }
+            }
+
+            buffer.putInt(16, levels.length);
+            basemapFile.endWrite();
+            lastBasemap = basemap;
+        }
+    }
+
+    void close() {
+        synchronized (this) {
+            nodeFile.close();
+        }
+        synchronized (basemapFile) {
+            basemapFile.close();
+        }
+    }
+
+    /**
+     * One of the exported files. The mapping is kept between exports and only
+     * replaced when the file has to grow. Not thread-safe: the owner locks.
+     */
+    private static class MappedFile {
+
+        private final File file;
+        private final int magic;
+        private RandomAccessFile raf;
+        private MappedByteBuffer buffer;
+        private long generation;
+        private boolean closed;
+
+        MappedFile(File file, int magic) {
+            this.file = file;
+            this.magic = magic;
+        }
+
+        /**
+         * Maps at least <code>length</code> bytes and marks the file as being
+         * written.
+         */
+        MappedByteBuffer beginWrite(int length) throws IOException {
+            if (buffer == null || buffer.capacity() < length) {
+                if (raf == null) {
+                    raf = new RandomAccessFile(file, "rw");
+                    generation = readGeneration();
+                }
+                if (raf.length() < length) {
+                    raf.setLength(length);
+                }
+                buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, Math.max(length, raf.length()));
+                buffer.order(ByteOrder.LITTLE_ENDIAN);
+            }
+            // odd generation: being written
+            buffer.putLong(GENERATION_OFFSET, ++generation);
+            return buffer;
+        }
+
+        void endWrite() {
+            buffer.putInt(0, magic);
+            buffer.putInt(4, VERSION);
+            // even generation: complete
+            buffer.putLong(GENERATION_OFFSET, ++generation);
+        }
+
+        void close() {
+            closed = true;
+            buffer = null;
+            if (raf != null) {
+                try {
+                    raf.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                raf = null;
+            }
+        }
+
+        /**
+         * Starts after the generation of a previous export of the same file,
+         * so that readers still see the counter increase. Rounded up to even.
+         */
+        private long readGeneration() throws IOException {
+            if (raf.length() < HEADER_LENGTH) {
+                return 0;
+            }
+            MappedByteBuffer header = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, HEADER_LENGTH);
+            header.order(ByteOrder.LITTLE_ENDIAN);
+            if (header.getInt(0) != magic) {
+                return 0;
+            }
+            long g = header.getLong(GENERATION_OFFSET);
+            return g + (g & 1);
+        }
+    }
+}
@@ -0,0 +1,156 @@
+/*
+Copyright 2008 WebAtlas
+Authors : Mathieu Bastian, Mathieu Jacomy, Julian Bilcke
+Website : http://www.gephi.org
+
+This file is part of Gephi.
+
+Gephi is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+Gephi is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Gephi.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.gephi.plugins.layout.geo;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+
+/**
+ * Streaming quantile sketch (KLL): estimates the quantiles of a stream of
+ * values in a single pass, keeping only a few thousands of them whatever the
+ * stream length. The rank error is about 1% with <code>k = 200</code>.
+ * <p>
+ * Values are kept in levels of compactors. When a level is full, it is
+ * sorted and every other value is promoted to the next level with a doubled
+ * weight.
+ *
+ * @author Alexis Jacomy
+ */
+final class QuantileSketch {
+
+    private static final double CAPACITY_DECAY = 2.0 / 3;
+    private static final int MIN_CAPACITY = 2;
+    private final int k;
+    // fixed seed: the same graph gives the same layout
+    private final Random random = new Random(0);
+    private double[][] levels = new double[0][];
+    private int[] sizes = new int[0];
+    private int[] capacities = new int[0];
+    private int retained;
+    private int maxRetained;
+    private long count;
+
+    QuantileSketch(int k) {
+        this.k = k;
+        addLevel();
+    }
+
+    long getCount() {
+        return count;
+    }
+
+    void update(double value) {
+        add(0, value);
+        count++;
+        if (retained > maxRetained) {
+            compress();
+        }
+    }
+
+    /**
+     * @param q the rank, between 0 and 1
+     * @return the estimated value at this rank, or NaN if the sketch is empty
+     */
+    double quantile(double q) {
+        if (count == 0) {
+            return Double.NaN;
+        }
+
+        final double[] values = new double[retained];
+        long[] weights = new long[retained];
+        Integer[] order = new Integer[retained];
+        int n = 0;
+        for (int h = 0; h < levels.length; h++) {
+            for (int i = 0; i < sizes[h]; i++) {
+                values[n] = levels[h][i];
+                weights[n] = 1L << h;
+                order[n] = n;
+                n++;
+            }
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+
+            public int compare(Integer a, Integer b) {
+                return Double.compare(values[a], values[b]);
+            }
+        });
+
+        double target = q * count;
+        long cumulative = 0;
+        for (Integer i : order) {
+            cumulative += weights[i];
+            if (cumulative >= target) {
+                return values[i];
+            }
+        }
+        return values[order[n - 1]];
+    }
+
+    private void add(int level, double value) {
+        if (sizes[level] == levels[level].length) {
+            levels[level] = Arrays.copyOf(levels[level], levels[level].length * 2);
+        }
+        levels[level][sizes[level]++] = value;
+        retained++;
+    }
+
+    /**
+     * Compacts the lowest full level into the next one.
+     */
+    private void compress() {
+        for (int h = 0; h < levels.length; h++) {
+            if (sizes[h] >= capacities[h]) {
+                if (h + 1 == levels.length) {
+                    addLevel();
+                }
+                double[] items = levels[h];
+                int size = sizes[h];
+                Arrays.sort(items, 0, size);
+
+                // with an odd size, the largest value stays at this level
+                int even = size - (size & 1);
+                for (int i = random.nextBoolean() ? 1 : 0; i < even; i += 2) {
+                    add(h + 1, items[i]);
+                }
+                items[0] = items[size - 1];
+                sizes[h] = size & 1;
+                retained -= even;
+                return;
+            }
+        }
+    }
+
+    private void addLevel() {
+        int height = levels.length + 1;
+        levels = Arrays.copyOf(levels, height);
+        sizes = Arrays.copyOf(sizes, height);
+        capacities = new int[height];
+        levels[height - 1] = new double[MIN_CAPACITY];
+
+        // capacities decrease geometrically from the top level
+        maxRetained = 0;
+        for (int h = 0; h < height; h++) {
+            capacities[h] = Math.max(MIN_CAPACITY, (int) Math.ceil(k * Math.pow(CAPACITY_DECAY, height - h - 1)));
+            maxRetained += capacities[h];
+        }
+    }
+}
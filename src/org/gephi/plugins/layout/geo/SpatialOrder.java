@@ -0,0 +1,129 @@
+/*
+Copyright 2008 WebAtlas
+Authors : Mathieu Bastian, Mathieu Jacomy, Julian Bilcke
+Website : http://www.gephi.org
+
+This file is part of Gephi.
+
+Gephi is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+Gephi is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Gephi.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.gephi.plugins.layout.geo;
+
+/**
+ * Orders projected points along a Morton (Z-order) curve, so that points
+ * close on the plan are close in the resulting order.
+ * <p>
+ * Each point gets a 32 bits key made of its x and y quantized on 16 bits and
+ * interleaved. The key and the point index are packed in a <code>long</code>
+ * and sorted with a LSD radix sort on the key bytes, which is linear in the
+ * number of points.
+ *
+ * @author Alexis Jacomy
+ */
+final class SpatialOrder {
+
+    private static final int QUANTIZATION = 0xFFFF;
+
+    private SpatialOrder() {
+    }
+
+    /**
+     * @return the indices of the given points, in Morton order
+     */
+    static int[] permutation(float[] x, float[] y) {
+        int count = x.length;
+        float xMin = Float.POSITIVE_INFINITY;
+        float xMax = Float.NEGATIVE_INFINITY;
+        float yMin = Float.POSITIVE_INFINITY;
+        float yMax = Float.NEGATIVE_INFINITY;
+
+        // infinite or NaN positions (poles in Mercator...) are left out of
+        // the bounds, and clamped on the border when quantized
+        for (int i = 0; i < count; i++) {
+            if (!Float.isInfinite(x[i]) && !Float.isNaN(x[i])) {
+                if (x[i] < xMin) xMin = x[i];
+                if (x[i] > xMax) xMax = x[i];
+            }
+            if (!Float.isInfinite(y[i]) && !Float.isNaN(y[i])) {
+                if (y[i] < yMin) yMin = y[i];
+                if (y[i] > yMax) yMax = y[i];
+            }
+        }
+
+        double xFactor = xMax > xMin ? QUANTIZATION / ((double) xMax - xMin) : 0;
+        double yFactor = yMax > yMin ? QUANTIZATION / ((double) yMax - yMin) : 0;
+
+        long[] keys = new long[count];
+        for (int i = 0; i < count; i++) {
+            long key = spread(quantize(x[i], xMin, xFactor)) | (spread(quantize(y[i], yMin, yFactor)) << 1);
+            keys[i] = (key << 32) | i;
+        }
+
+        radixSort(keys);
+
+        int[] permutation = new int[count];
+        for (int i = 0; i < count; i++) {
+            permutation[i] = (int) keys[i];
+        }
+        return permutation;
+    }
+
+    private static int quantize(float value, float min, double factor) {
+        double q = (value - min) * factor;
+        if (!(q > 0)) {
+            return 0;
+        } else if (q > QUANTIZATION) {
+            return QUANTIZATION;
+        }
+        return (int) q;
+    }
+
+    /**
+     * Spreads the 16 lower bits of <code>v</code> on the even bits.
+     */
+    private static long spread(int v) {
+        v &= 0xFFFF;
+        v = (v | (v << 8)) & 0x00FF00FF;
+        v = (v | (v << 4)) & 0x0F0F0F0F;
+        v = (v | (v << 2)) & 0x33333333;
+        v = (v | (v << 1)) & 0x55555555;
+        return v & 0xFFFFFFFFL;
+    }
+
+    /**
+     * Sorts on the 32 upper bits only, one byte per pass. The number of
+     * passes is even, so the result ends up back in <code>keys</code>.
+     */
+    private static void radixSort(long[] keys) {
+        long[] src = keys;
+        long[] dst = new long[keys.length];
+
+        for (int shift = 32; shift < 64; shift += 8) {
+            int[] offsets = new int[257];
+            for (long k : src) {
+                offsets[(int) ((k >>> shift) & 0xFF) + 1]++;
+            }
+            for (int i = 0; i < 256; i++) {
+                offsets[i + 1] += offsets[i];
+            }
+            for (long k : src) {
+                dst[offsets[(int) ((k >>> shift) & 0xFF)]++] = k;
+            }
+
+            long[] tmp = src;
+            src = dst;
+            dst = tmp;
+        }
+    }
+}